@@ -11,6 +11,9 @@
  * - Each page displays 20 images, there are buttons to navigate between pages (next and previous)
  * - Reset button resets the GUI to its default state (same as when the GUI first launches)
  * - Random button randomly selects an image to be tested by either intensity or color-code method
+ * - Combined button ranks by a weighted sum of the intensity and color-code distances, using the weight slider
+ * - Mark Relevant button lets the user mark retrieved images as relevant, and Refine button re-ranks the top images
+ * with bin weights learned from the marked images (relevance feedback)
  *
  * Assumption: There are 100 images in the image database
  *             There are 25 bins in the intensity color histogram
@@ -61,7 +64,7 @@ public class CBIR extends JFrame
     private JLabel photographLabel = new JLabel();  //container to hold a large 
     private JButton [] button; //creates an array of JButtons
     private int [] buttonOrder = new int [101]; //creates an array to keep up with the image order
-    private double [] imageSize = new double[101]; //keeps up with the image sizes
+    private histogramIndex index; //histogram data and ranking code of the image database
     private GridLayout gridLayout1;
     private GridLayout gridLayout2;
     private GridLayout gridLayout3;
@@ -72,9 +75,16 @@ public class CBIR extends JFrame
     private JPanel buttonPanel;
     private JPanel Text;
     private JLabel picLabel;
-    private Double [][] intensityMatrix = new Double [101][25];
-    private Double [][] colorCodeMatrix = new Double [101][64];
-    private HashMap <Double , ArrayList<Integer>> map;
+    private Double [][] intensityMatrix;
+    private Double [][] colorCodeMatrix;
+    private JSlider weightSlider; //percentage of the combined score given to the intensity distance
+    final int TOP_K = 20; //number of images the combined ranking has to be certain about (one page)
+    private histogramIndex.fusedRanking fused; //last combined query while the images after its top k are not ranked
+    private JToggleButton markRelevant; //when selected, clicking an image marks it as relevant instead of selecting it
+    private TreeSet<Integer> relevant = new TreeSet<>(); //images marked as relevant
+    private javax.swing.border.Border defaultBorder;
+    private boolean ranked = false; //true when buttonOrder holds a ranking that can be refined
+    final int FEEDBACK_CANDIDATES = 40; //number of top images re-ranked by a feedback round
     int picNo = 0;
     int imageCount = 1; //keeps up with the number of images displayed since the first page.
     int pageNo = 1;
@@ -137,6 +147,14 @@ public class CBIR extends JFrame
         JButton colorCode = new JButton("Color Code");
         JButton reset = new JButton("Reset System");
         JButton random = new JButton("Random Image");
+        JButton combined = new JButton("Combined");
+        markRelevant = new JToggleButton("Mark Relevant");
+        JButton refine = new JButton("Refine");
+        weightSlider = new JSlider(0, 100, 50);
+        weightSlider.setBorder(BorderFactory.createTitledBorder("Intensity Weight (%)"));
+        weightSlider.setMajorTickSpacing(25);
+        weightSlider.setPaintTicks(true);
+        weightSlider.setPaintLabels(true);
 
         buttonPanel.add(previousPage);
         buttonPanel.add(nextPage);
@@ -144,6 +162,10 @@ public class CBIR extends JFrame
         buttonPanel.add(colorCode);
         buttonPanel.add(reset);
         buttonPanel.add(random);
+        buttonPanel.add(combined);
+        buttonPanel.add(weightSlider);
+        buttonPanel.add(markRelevant);
+        buttonPanel.add(refine);
 
         nextPage.addActionListener(new nextPageHandler());
         previousPage.addActionListener(new previousPageHandler());
@@ -151,24 +173,16 @@ public class CBIR extends JFrame
         colorCode.addActionListener(new colorCodeHandler());
         reset.addActionListener(new resetHandler());
         random.addActionListener(new randomHandler());
+        combined.addActionListener(new combinedHandler());
+        refine.addActionListener(new refineHandler());
         setSize(1100, 750);
         // this centers the frame on the screen
         setLocationRelativeTo(null);
 
-        // get the images' height and width by reading the image_size.txt
-        try
-        {
-            Scanner read = new Scanner(new File("image_size.txt"));
-            String[] str = (read.nextLine()).split(",");
-            for (int i = 0; i < str.length; i++)
-            {
-                imageSize[i+1] = Double.parseDouble(str[i]);
-            }
-        }
-        catch(FileNotFoundException EE)
-        {
-            System.out.println("The file intensity.txt does not exist");
-        }
+        // get the images' sizes and histograms by reading the files written by readImage
+        index = new histogramIndex();
+        intensityMatrix = index.intensityMatrix;
+        colorCodeMatrix = index.colorCodeMatrix;
 
         // This loop goes through the image database and and stores them as icons and add the images
         // to JButtons and then to the JButton array
@@ -192,87 +206,16 @@ public class CBIR extends JFrame
                 buttonOrder[i] = i;
             }
         }
+        defaultBorder = button[1].getBorder();
 
-        readIntensityFile();
-        readColorCodeFile();
+        long start = System.nanoTime();
+        index.buildSortedStreams();
+        System.out.printf("Sorted streams built once at startup: %d row distances in %.3f ms%n",
+                2 * index.size * index.size, (System.nanoTime() - start) / 1e6);
         displayFirstPage();
     }
 
 
-    /**
-     * This method opens the intensity text file containing the intensity matrix with the histogram bin values for
-     * each image.
-     * The contents of the matrix are processed and stored in a two dimensional array called intensityMatrix.
-     *
-     */
-    public void readIntensityFile()
-    {
-      StringTokenizer token;
-      Scanner read;
-      double intensityBin;
-      int lineNumber = 1;
-
-         try
-         {
-           read =new Scanner(new File ("intensity.txt"));
-          
-           while(read.hasNextLine())
-           {
-               // tokenize the line by comma
-               token = new StringTokenizer(read.nextLine(), ",");
-               int binNumber = 0;
-               while(token.hasMoreTokens())
-               {
-                   // stores histogram bin values in matrix
-                   intensityBin = Double.parseDouble(token.nextToken());
-                   intensityMatrix[lineNumber][binNumber++] = intensityBin;
-
-               }
-               lineNumber++;
-           }
-         }
-         catch(FileNotFoundException EE){
-           System.out.println("The file intensity.txt does not exist");
-         }
-    }
-
-
-    /**
-     * This method opens the color code text file containing the color code matrix with the histogram bin values for
-     * each image.
-     * The contents of the matrix are processed and stored in a two dimensional array called colorCodeMatrix.
-     *
-     */
-    private void readColorCodeFile()
-    {
-      StringTokenizer token;
-      Scanner read;
-      Double colorCodeBin;
-      int lineNumber = 1;
-         try
-         {
-             read =new Scanner(new File ("colorCodes.txt"));
-             while(read.hasNextLine())
-             {
-                 // tokenize the line by comma
-                 token = new StringTokenizer(read.nextLine(), ",");
-                 int binNumber = 0;
-                 while(token.hasMoreTokens())
-                 {
-                     // stores histogram bin values in matrix
-                     colorCodeBin = Double.parseDouble(token.nextToken());
-                     colorCodeMatrix[lineNumber][binNumber++] = colorCodeBin;
-                 }
-                 lineNumber++;
-             }
-         }
-         catch(FileNotFoundException EE)
-         {
-           System.out.println("The file intensity.txt does not exist");
-         }
-    }
-
-
     /**
      * This method displays the first twenty images in the panelBottom. The for loop starts at number one and gets
      * the image number stored in the buttonOrder array and assigns the value to imageButNo.
@@ -305,6 +248,7 @@ public class CBIR extends JFrame
     /**
      * This class implements an ActionListener for each iconButton. When an icon button is clicked, the image on the
      * the button is added to the photographLabel and the picNo is set to the image number selected and being displayed.
+     * When the Mark Relevant button is selected, the click marks or unmarks the image as relevant instead.
      *
      */
     private class IconButtonHandler implements ActionListener
@@ -320,8 +264,18 @@ public class CBIR extends JFrame
       
       public void actionPerformed( ActionEvent e)
       {
+        if (markRelevant.isSelected())
+        {
+            markImage(pNo);
+            return;
+        }
+
         photographLabel.setIcon(iconUsed);
         picNo = pNo;
+        clearRelevant();
+        // the current ranking belongs to the previous query image, it cannot be refined for this one
+        ranked = false;
+        fused = null;
         // changes title according to the image file selected
         setTitle("Content-based Image Retrieval System: " + picNo + ".jpg is selected");
 
@@ -343,6 +297,9 @@ public class CBIR extends JFrame
 
       public void actionPerformed( ActionEvent e)
       {
+          // the next pages of a combined query have to be ranked first
+          finishFusedRanking();
+
           int imageButNo = 0;
           int endImage = imageCount + 20;
           if(endImage <= 101)
@@ -419,20 +376,13 @@ public class CBIR extends JFrame
     {
 
         public void actionPerformed( ActionEvent e) {
-            // reset map
-            try
-            {
-                if (!map.isEmpty())
-                {
-                    map.clear();
-                }
-            }
-            catch(NullPointerException exception){}
-
             // reset image display
             photographLabel.setIcon(null);
             photographLabel.setText(null);
             picNo = 0;
+            clearRelevant();
+            ranked = false;
+            fused = null;
             setTitle("Content-based Image Retrieval System: Please Select an Image");
 
             // reset image display order to initial order
@@ -456,6 +406,8 @@ public class CBIR extends JFrame
         {
             // get an random int between 1 and 100
             int pNo = ThreadLocalRandom.current().nextInt(1, 101);
+            // a random image is always a query image, so leave the Mark Relevant mode first
+            markRelevant.setSelected(false);
             // simulates a click action
             button[pNo].doClick();
         }
@@ -466,13 +418,18 @@ public class CBIR extends JFrame
     /**
      * This class implements an ActionListener when the user selects the intensityHandler button. The image number that the
      * user would like to find similar images for is stored in the variable pic. It calls manhattanDistance method to
-     * calculate the distance between pic and the others
+     * calculate the distance between pic and the others. Nothing is ranked until a query image is selected.
      */
     private class intensityHandler implements ActionListener
     {
 
       public void actionPerformed( ActionEvent e)
       {
+          if (picNo == 0)
+          {
+              System.out.println("Select a query image first");
+              return;
+          }
           int pic = picNo;
           manhattanDistance(intensityMatrix, pic, 25);
       }
@@ -483,13 +440,18 @@ public class CBIR extends JFrame
     /**
      * This class implements an ActionListener when the user selects the colorCodeHandler button. The image number that the
      * user would like to find similar images for is stored in the variable pic. It calls manhattanDistance method to
-     * calculate the distance between pic and the others
+     * calculate the distance between pic and the others. Nothing is ranked until a query image is selected.
      */
     private class colorCodeHandler implements ActionListener
     {
 
       public void actionPerformed( ActionEvent e)
       {
+          if (picNo == 0)
+          {
+              System.out.println("Select a query image first");
+              return;
+          }
           int pic = picNo;
           manhattanDistance(colorCodeMatrix, pic, 64);
       }
@@ -497,67 +459,205 @@ public class CBIR extends JFrame
 
 
     /**
-     * This method calculates the distance between query image and the others by using Manhattan Distance.
-     * The size of the image is retrieved from the imageSize array. The selected image's bin values are
-     * compared to all the other image's bin values and a score is determined for how well the images compare.
-     * The images are then arranged from most similar to the least.
-     * This distance values are stored as keys in a HashMap where the value of the associated key is an image number
+     * This class implements an ActionListener when the user selects the combinedHandler button. The image number that the
+     * user would like to find similar images for is stored in the variable pic. It calls fusedDistance method with the
+     * weights chosen on the weight slider. Nothing is ranked until a query image is selected.
+     */
+    private class combinedHandler implements ActionListener
+    {
+
+      public void actionPerformed( ActionEvent e)
+      {
+          if (picNo == 0)
+          {
+              System.out.println("Select a query image first");
+              return;
+          }
+          int pic = picNo;
+          double intensityWeight = weightSlider.getValue() / 100.0;
+          fusedDistance(pic, intensityWeight, 1 - intensityWeight, TOP_K);
+      }
+    }
+
+
+    /**
+     * This method ranks the images by the weighted sum of their intensity and color-code distances to the query image
+     * with histogramIndex.fusedRank, which stops the threshold algorithm as soon as the top k images are certain.
+     * Only the top k images (the first page) are ranked when it stops. The other images are ranked by
+     * finishFusedRanking when they are needed (next page or refine).
+     * The sorted streams are built once at startup, so their cost is shared by all the combined queries and is not
+     * counted in the rows scored by a query.
      *
      */
-    private void manhattanDistance(Double[][] matrix, int pic, int bin)
+    private void fusedDistance(int pic, double intensityWeight, double colorCodeWeight, int k)
     {
-        map = new HashMap<Double, ArrayList<Integer>>();
-        double [] distance = new double [101];
+        fused = index.fusedRank(pic, intensityWeight, colorCodeWeight, k);
+        System.out.println("Combined ranking scored " + fused.rowsScored + " rows for the first page (two full scans"
+                + " score " + 2 * index.size + ", the sorted streams cost " + 2 * index.size * index.size
+                + " row distances once at startup)");
 
-        // Goes through all the images and calculates the distance values
-        for (int img = 1; img < 101; img++)
+        // the first page holds the top k from the best to the worst, the other pages are ranked later
+        for (int i = 0; i < fused.top.length; i++)
         {
-            double d = 0;
-            for (int j = 0; j < bin; j++)
-            {
-                d += Math.abs((matrix[pic][j]/imageSize[pic]) - (matrix[img][j]/imageSize[img]));
-            }
-            // update array of map keys
-            distance[img] = d;
+            buttonOrder[i + 1] = fused.top[i];
+        }
 
-            // add key and value to HashMap
-            if (map.containsKey(d))
-            {
-                map.get(d).add(img);
-            }
-            else
-            {
-                ArrayList<Integer> arrList = new ArrayList<>();
-                arrList.add(img);
-                map.put(d, arrList);
-            }
+        ranked = true;
+        imageCount = 1;
+        displayFirstPage();
+    }
+
+
+    /**
+     * This method marks an image as relevant, or unmarks it if it was already marked.
+     * Marked images are shown with a red border.
+     *
+     */
+    private void markImage(int img)
+    {
+        if (relevant.remove(img))
+        {
+            button[img].setBorder(defaultBorder);
+        }
+        else
+        {
+            relevant.add(img);
+            button[img].setBorder(BorderFactory.createLineBorder(Color.RED, 3));
+        }
+    }
+
+
+    /**
+     * This method unmarks all the relevant images
+     *
+     */
+    private void clearRelevant()
+    {
+        for (int img : relevant)
+        {
+            button[img].setBorder(defaultBorder);
+        }
+        relevant.clear();
+    }
+
+
+    /**
+     * This class implements an ActionListener when the user selects the refineHandler button. The query image and the
+     * images marked as relevant are used to learn a weight for each bin. Only the top FEEDBACK_CANDIDATES images of the
+     * current ranking and the marked images ranked after them are re-ranked, using the normalized rows cached by the
+     * index, so a feedback round does not scan the whole image database. The time taken by the round is printed.
+     */
+    private class refineHandler implements ActionListener
+    {
+
+      public void actionPerformed( ActionEvent e)
+      {
+          if (!ranked)
+          {
+              System.out.println("Rank the images before refining them");
+              return;
+          }
+          // the candidates after the first page of a combined query have to be ranked first
+          finishFusedRanking();
+
+          long start = System.nanoTime();
+          ArrayList<Integer> feedback = new ArrayList<>(relevant);
+          if (picNo != 0 && !relevant.contains(picNo))
+          {
+              feedback.add(picNo);
+          }
+          if (feedback.isEmpty())
+          {
+              return;
+          }
+
+          // the marked images ranked after the top images are candidates too, so that they can move up
+          ArrayList<Integer> candidateList = new ArrayList<>();
+          ArrayList<Integer> rest = new ArrayList<>();
+          for (int i = 1; i < buttonOrder.length; i++)
+          {
+              if (i <= FEEDBACK_CANDIDATES || feedback.contains(buttonOrder[i]))
+              {
+                  candidateList.add(buttonOrder[i]);
+              }
+              else
+              {
+                  rest.add(buttonOrder[i]);
+              }
+          }
+          int [] candidates = new int [candidateList.size()];
+          for (int i = 0; i < candidates.length; i++)
+          {
+              candidates[i] = candidateList.get(i);
+          }
+          int [] order = index.rerank(candidates, index.feedbackQuery(feedback), index.feedbackWeights(feedback));
+          for (int i = 0; i < order.length; i++)
+          {
+              buttonOrder[i + 1] = order[i];
+          }
+          for (int i = 0; i < rest.size(); i++)
+          {
+              buttonOrder[order.length + i + 1] = rest.get(i);
+          }
+          long elapsed = System.nanoTime() - start;
+
+          System.out.printf("Refined %d images with %d relevant images in %.3f ms%n", candidates.length,
+                  feedback.size(), elapsed / 1e6);
+          imageCount = 1;
+          displayFirstPage();
+      }
+    }
+
+
+    /**
+     * This method ranks the images after the first page of the last combined query with
+     * histogramIndex.finishFusedRanking. The first page does not change.
+     *
+     */
+    private void finishFusedRanking()
+    {
+        if (fused == null)
+        {
+            return;
+        }
+
+        int rowsScored = fused.rowsScored;
+        int [] order = index.finishFusedRanking(fused);
+        for (int i = 0; i < order.length; i++)
+        {
+            buttonOrder[i + 1] = order[i];
         }
+        System.out.println("Combined ranking scored " + (fused.rowsScored - rowsScored)
+                + " more rows to rank the other pages");
+        fused = null;
+    }
 
-        // sorts keys
-        Arrays.sort(distance);
 
+    /**
+     * This method calculates the distance between query image and the others by using Manhattan Distance.
+     * The size of the image is retrieved from the imageSize array of the index. The selected image's bin values are
+     * compared to all the other image's bin values and a score is determined for how well the images compare.
+     * The images are then arranged from most similar to the least by histogramIndex.rank, which is the same code
+     * driven by the load generator (queryLoad).
+     *
+     */
+    private void manhattanDistance(Double[][] matrix, int pic, int bin)
+    {
         // update GUI display
-        updateDisplay(distance, map);
+        updateDisplay(index.rank(matrix, pic, bin, 100));
     }
 
     /**
      * This method updates the buttonOrder array with images in an ascending order (similarity rank)
-     * It also handles the situation where multiple images share the same distance score (key) with the query image
+     * Images that share the same distance score with the query image are ordered by image number
      *
      */
-    private void updateDisplay(double[] distanceKeys, HashMap<Double, ArrayList<Integer>> map) {
-        double key;
-        panelBottom1.removeAll();
-
-        for (int i = 1; i < 101; i++) {
-            key = distanceKeys[i];
-            ArrayList<Integer> arrList = map.get(key);
-            for (int j = 0; j < arrList.size(); j++)
-            {
-                buttonOrder[i+j] = arrList.get(j);
-            }
-            i = i + arrList.size() - 1;
+    private void updateDisplay(int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            buttonOrder[i + 1] = order[i];
         }
+        fused = null;
+        ranked = true;
         imageCount = 1;
         displayFirstPage();
     }
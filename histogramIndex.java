@@ -0,0 +1,651 @@
+/*
+ * CSS 490A
+ * Project 1: Implement a Simple Content-Based Image Retrieval System
+ *
+ * This class holds the histogram data of the image database and the ranking code used by the GUI.
+ * - It reads the intensity file, color-code file and image size file written by readImage.
+ * - It calculates the Manhattan Distance between the query image and the others without any GUI, so that the same
+ * code can be driven by the load generator (queryLoad).
+ * - A bigger index can be generated from the image database to measure how the ranking behaves with more images.
+ * - Relevance feedback re-ranks a candidate set with per-bin weights learned from the images marked as relevant.
+ * - A block of queries can be ranked together in one pass over the index (batchRank), which reads each row once for
+ * the whole block instead of once per query.
+ * - The combined ranking (weighted sum of the intensity and color-code distances) uses the threshold algorithm over
+ * per-image sorted streams, so it usually stops before scoring every image.
+ *
+ * Assumption: There are 100 images in the image database
+ *             There are 25 bins in the intensity color histogram
+ *             There are 64 bins in the color-code color histogram
+ *
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * histogramIndex class
+ *
+ */
+public class histogramIndex
+{
+    final static int IMAGE_COUNT = 100;
+    final static int INTEN_BIN = 25;
+    final static int COLOR_CODE_BIN = 64;
+    final static int TILE_ROWS = 256; //rows scored by every query of a batch before moving on (fits in the L2 cache)
+
+    int size; //number of images in the index, rows are numbered from 1 to size
+    double [] imageSize;
+    Double [][] intensityMatrix;
+    Double [][] colorCodeMatrix;
+    double [][] normalizedRows; //intensity bins then color-code bins of each image, divided by its size
+    int [][] intensityStream; //intensityStream[pic][d] is the image at depth d (1 to size) sorted by intensity distance
+    int [][] colorCodeStream; //the same for the color-code distance
+    double [][] intensityStreamDistance; //distance of the image at each depth of intensityStream
+    double [][] colorCodeStreamDistance;
+
+    /**
+     * This class holds a combined ranking computed by fusedRank. top holds the k images that are certain to be the
+     * most similar. The scores of the images seen by the threshold algorithm are kept so that finishFusedRanking can
+     * rank the other images without scoring them again.
+     *
+     */
+    static class fusedRanking
+    {
+        int pic;
+        double intensityWeight;
+        double colorCodeWeight;
+        double [] score; //score[img] is the combined score of img when seen[img] is true
+        boolean [] seen;
+        int [] top;
+        int rowsScored = 0; //rows scored by fusedRank and finishFusedRanking, the sorted streams are not counted
+    }
+
+    /**
+     * histogramIndex constructor
+     * It reads the histogram files of the image database
+     *
+     */
+    public histogramIndex()
+    {
+        size = IMAGE_COUNT;
+        imageSize = new double[size + 1];
+        intensityMatrix = new Double[size + 1][INTEN_BIN];
+        colorCodeMatrix = new Double[size + 1][COLOR_CODE_BIN];
+
+        readImageSizeFile();
+        readHistogramFile("intensity.txt", intensityMatrix);
+        readHistogramFile("colorCodes.txt", colorCodeMatrix);
+        buildNormalizedRows();
+    }
+
+    /**
+     * histogramIndex constructor
+     * It builds a synthetic index of the given size by copying the images of the base index. Each bin of a copy is
+     * changed by up to 10% so that the copies do not all share the same distance with the query image.
+     *
+     */
+    public histogramIndex(histogramIndex base, int size, long seed)
+    {
+        Random random = new Random(seed);
+        this.size = size;
+        imageSize = new double[size + 1];
+        intensityMatrix = new Double[size + 1][INTEN_BIN];
+        colorCodeMatrix = new Double[size + 1][COLOR_CODE_BIN];
+
+        for (int img = 1; img <= size; img++)
+        {
+            int from = (img - 1) % base.size + 1;
+            imageSize[img] = base.imageSize[from];
+            for (int j = 0; j < INTEN_BIN; j++)
+            {
+                intensityMatrix[img][j] = base.intensityMatrix[from][j] * (0.9 + 0.2 * random.nextDouble());
+            }
+            for (int j = 0; j < COLOR_CODE_BIN; j++)
+            {
+                colorCodeMatrix[img][j] = base.colorCodeMatrix[from][j] * (0.9 + 0.2 * random.nextDouble());
+            }
+        }
+        buildNormalizedRows();
+    }
+
+    /**
+     * This method gets the images' height and width by reading the image_size.txt
+     *
+     */
+    private void readImageSizeFile()
+    {
+        try
+        {
+            Scanner read = new Scanner(new File("image_size.txt"));
+            String[] str = (read.nextLine()).split(",");
+            for (int i = 0; i < str.length; i++)
+            {
+                imageSize[i+1] = Double.parseDouble(str[i]);
+            }
+        }
+        catch(FileNotFoundException EE)
+        {
+            System.out.println("The file image_size.txt does not exist");
+        }
+    }
+
+    /**
+     * This method opens a histogram text file with the bin values for each image, one image per line.
+     * The contents of the file are stored in the given two dimensional array, starting at row 1.
+     *
+     */
+    private void readHistogramFile(String fileName, Double[][] matrix)
+    {
+        StringTokenizer token;
+        Scanner read;
+        int lineNumber = 1;
+        try
+        {
+            read = new Scanner(new File(fileName));
+            while(read.hasNextLine())
+            {
+                // tokenize the line by comma
+                token = new StringTokenizer(read.nextLine(), ",");
+                int binNumber = 0;
+                while(token.hasMoreTokens())
+                {
+                    // stores histogram bin values in matrix
+                    matrix[lineNumber][binNumber++] = Double.parseDouble(token.nextToken());
+                }
+                lineNumber++;
+            }
+        }
+        catch(FileNotFoundException EE)
+        {
+            System.out.println("The file " + fileName + " does not exist");
+        }
+    }
+
+    /**
+     * This method returns the histogram matrix and its number of bins for a descriptor name ("intensity" or
+     * "colorCode"). Any other name throws an IllegalArgumentException.
+     *
+     */
+    Double[][] matrix(String descriptor)
+    {
+        return bins(descriptor) == INTEN_BIN ? intensityMatrix : colorCodeMatrix;
+    }
+
+    static int bins(String descriptor)
+    {
+        switch (descriptor)
+        {
+            case "intensity": return INTEN_BIN;
+            case "colorCode": return COLOR_CODE_BIN;
+            default: throw new IllegalArgumentException("Unknown descriptor " + descriptor);
+        }
+    }
+
+    /**
+     * This method returns where the bins of a histogram matrix start in the normalized rows
+     *
+     */
+    private int offset(Double[][] matrix)
+    {
+        return matrix == intensityMatrix ? 0 : INTEN_BIN;
+    }
+
+    /**
+     * This method calculates the Manhattan Distance between two images for one descriptor.
+     * Bin values are divided by the image size so that images of different sizes can be compared; the divided values
+     * are read from the normalized rows built when the index is loaded.
+     *
+     */
+    double distance(Double[][] matrix, int pic, int img, int bin)
+    {
+        int from = offset(matrix);
+        double [] query = normalizedRows[pic];
+        double [] row = normalizedRows[img];
+        double d = 0;
+        for (int j = from; j < from + bin; j++)
+        {
+            d += Math.abs(query[j] - row[j]);
+        }
+        return d;
+    }
+
+    /**
+     * This method calculates the distance between the query image and every image of the index.
+     * The distance of image img is stored at distance[img].
+     *
+     */
+    double[] distances(Double[][] matrix, int pic, int bin)
+    {
+        double [] distance = new double [size + 1];
+        for (int img = 1; img <= size; img++)
+        {
+            distance[img] = distance(matrix, pic, img, bin);
+        }
+        return distance;
+    }
+
+    /**
+     * This method returns the k images that are the most similar to the query image, from the most similar to the
+     * least. Images with the same distance are ranked by image number, like the GUI does.
+     * It is a batchRank call with a block of one query, so the GUI, the load generator and batch jobs all run the same
+     * scoring and top-k code.
+     *
+     */
+    int[] rank(Double[][] matrix, int pic, int bin, int k)
+    {
+        String descriptor = matrix == intensityMatrix ? "intensity" : "colorCode";
+        if ((matrix != intensityMatrix && matrix != colorCodeMatrix) || bin != bins(descriptor))
+        {
+            throw new IllegalArgumentException("The matrix and " + bin + " bins are not a descriptor of this index");
+        }
+        return batchRank(descriptor, new double[][] {queryRow(descriptor, pic)}, k)[0];
+    }
+
+    /**
+     * This method builds the normalized rows of the index. A row holds the intensity bins followed by the color-code
+     * bins of an image, divided by the image size. The rows are built once when the index is loaded and reused by
+     * every feedback round and batch query.
+     *
+     */
+    private void buildNormalizedRows()
+    {
+        normalizedRows = new double[size + 1][INTEN_BIN + COLOR_CODE_BIN];
+        for (int img = 1; img <= size; img++)
+        {
+            for (int j = 0; j < INTEN_BIN; j++)
+            {
+                normalizedRows[img][j] = intensityMatrix[img][j] / imageSize[img];
+            }
+            for (int j = 0; j < COLOR_CODE_BIN; j++)
+            {
+                normalizedRows[img][INTEN_BIN + j] = colorCodeMatrix[img][j] / imageSize[img];
+            }
+        }
+    }
+
+    /**
+     * This method returns the average normalized row of the relevant images. It is used as the new query.
+     *
+     */
+    double[] feedbackQuery(List<Integer> relevant)
+    {
+        double [][] rows = normalizedRows;
+        double [] query = new double[INTEN_BIN + COLOR_CODE_BIN];
+        for (int img : relevant)
+        {
+            for (int j = 0; j < query.length; j++)
+            {
+                query[j] += rows[img][j] / relevant.size();
+            }
+        }
+        return query;
+    }
+
+    /**
+     * This method derives a weight for each bin from the relevant images. Bins on which the relevant images agree
+     * (small standard deviation) get a large weight, bins on which they differ get a small one.
+     * The weights are scaled so that their average is 1; with a single relevant image all the weights are 1.
+     *
+     */
+    double[] feedbackWeights(List<Integer> relevant)
+    {
+        double [][] rows = normalizedRows;
+        double [] query = feedbackQuery(relevant);
+        double [] weight = new double[query.length];
+        double sum = 0;
+        for (int j = 0; j < weight.length; j++)
+        {
+            double variance = 0;
+            for (int img : relevant)
+            {
+                variance += (rows[img][j] - query[j]) * (rows[img][j] - query[j]) / relevant.size();
+            }
+            // the constant keeps bins that never change from taking all the weight
+            weight[j] = 1 / (Math.sqrt(variance) + 0.01);
+            sum += weight[j];
+        }
+        for (int j = 0; j < weight.length; j++)
+        {
+            weight[j] = weight[j] * weight.length / sum;
+        }
+        return weight;
+    }
+
+    /**
+     * This method re-ranks the candidate images by their weighted Manhattan Distance to the query row.
+     * Only the candidates are scored, so a feedback round does not scan the whole index.
+     * The candidates are returned from the most similar to the least.
+     *
+     */
+    int[] rerank(int[] candidates, double[] query, double[] weight)
+    {
+        double [][] rows = normalizedRows;
+        // distance[i] and order hold positions in candidates, so the scratch space is the size of the candidate set
+        final double [] distance = new double[candidates.length];
+        Integer [] order = new Integer[candidates.length];
+        for (int i = 0; i < candidates.length; i++)
+        {
+            double [] row = rows[candidates[i]];
+            double d = 0;
+            for (int j = 0; j < query.length; j++)
+            {
+                d += weight[j] * Math.abs(query[j] - row[j]);
+            }
+            distance[i] = d;
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                return Double.compare(distance[a], distance[b]);
+            }
+        });
+
+        int [] result = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+        {
+            result[i] = candidates[order[i]];
+        }
+        return result;
+    }
+
+    /**
+     * This method returns the normalized histogram of an image for one descriptor, to be used as a query by batchRank
+     *
+     */
+    double[] queryRow(String descriptor, int pic)
+    {
+        int from = bins(descriptor) == INTEN_BIN ? 0 : INTEN_BIN;
+        return Arrays.copyOfRange(normalizedRows[pic], from, from + bins(descriptor));
+    }
+
+    /**
+     * This method ranks a block of queries in one pass over the index. Each query is a normalized histogram of the
+     * descriptor (see queryRow). The rows are read one tile of TILE_ROWS images at a time and every query of the block
+     * is scored against the tile while it is still in the cache, keeping the best k images of each query.
+     * result[q] holds the k images that are the most similar to queries[q], from the most similar to the least, with
+     * the same order as rank.
+     *
+     */
+    int[][] batchRank(String descriptor, double[][] queries, int k)
+    {
+        if (k < 1)
+        {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        double [][] rows = normalizedRows;
+        int bin = bins(descriptor);
+        int from = bin == INTEN_BIN ? 0 : INTEN_BIN;
+        k = Math.min(k, size);
+
+        // best k distances and images of each query, kept in a max-heap with the worst image at position 0
+        double [][] heapDistance = new double[queries.length][k];
+        int [][] heapImage = new int[queries.length][k];
+        int [] count = new int[queries.length];
+
+        for (int tile = 1; tile <= size; tile += TILE_ROWS)
+        {
+            int end = Math.min(size, tile + TILE_ROWS - 1);
+            for (int q = 0; q < queries.length; q++)
+            {
+                double [] query = queries[q];
+                double [] distance = heapDistance[q];
+                int [] image = heapImage[q];
+                for (int img = tile; img <= end; img++)
+                {
+                    double [] row = rows[img];
+                    double d = 0;
+                    for (int j = 0; j < bin; j++)
+                    {
+                        d += Math.abs(query[j] - row[from + j]);
+                    }
+
+                    if (count[q] < k)
+                    {
+                        // fill the heap, moving the new image up while it is worse than its parent
+                        int i = count[q]++;
+                        while (i > 0 && worse(d, img, distance[(i - 1) / 2], image[(i - 1) / 2]))
+                        {
+                            distance[i] = distance[(i - 1) / 2];
+                            image[i] = image[(i - 1) / 2];
+                            i = (i - 1) / 2;
+                        }
+                        distance[i] = d;
+                        image[i] = img;
+                    }
+                    // images come in ascending order, so an image with the same distance never replaces an earlier one
+                    else if (d < distance[0])
+                    {
+                        siftDown(distance, image, k, d, img);
+                    }
+                }
+            }
+        }
+
+        // removing the worst image k times gives the ranking from the end
+        int [][] result = new int[queries.length][k];
+        for (int q = 0; q < queries.length; q++)
+        {
+            double [] distance = heapDistance[q];
+            int [] image = heapImage[q];
+            for (int n = k; n > 0; n--)
+            {
+                result[q][n - 1] = image[0];
+                siftDown(distance, image, n - 1, distance[n - 1], image[n - 1]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * This method builds the sorted streams of both descriptors, unless they are already built.
+     * For every image, the other images are listed from the most similar to the least (then by image number), together
+     * with their distance. This costs 2 x size x size row distances and memory, once; the combined ranking then reads
+     * the streams from the top instead of scanning the whole index for each query.
+     *
+     */
+    synchronized void buildSortedStreams()
+    {
+        if (intensityStream != null)
+        {
+            return;
+        }
+        intensityStream = new int[size + 1][size + 1];
+        intensityStreamDistance = new double[size + 1][size + 1];
+        colorCodeStream = new int[size + 1][size + 1];
+        colorCodeStreamDistance = new double[size + 1][size + 1];
+        buildSortedStream(intensityMatrix, INTEN_BIN, intensityStream, intensityStreamDistance);
+        buildSortedStream(colorCodeMatrix, COLOR_CODE_BIN, colorCodeStream, colorCodeStreamDistance);
+    }
+
+    private void buildSortedStream(Double[][] matrix, int bin, int[][] stream, double[][] streamDistance)
+    {
+        Integer [] order = new Integer[size];
+        for (int pic = 1; pic <= size; pic++)
+        {
+            final double [] distance = distances(matrix, pic, bin);
+            for (int img = 1; img <= size; img++)
+            {
+                order[img - 1] = img;
+            }
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    int c = Double.compare(distance[a], distance[b]);
+                    return c != 0 ? c : Integer.compare(a, b);
+                }
+            });
+            for (int i = 0; i < size; i++)
+            {
+                stream[pic][i + 1] = order[i];
+                streamDistance[pic][i + 1] = distance[order[i]];
+            }
+        }
+    }
+
+    /**
+     * This method returns the k images with the smallest weighted sum of their intensity and color-code distances to
+     * the query image, from the most similar to the least, then by image number.
+     * It uses the threshold algorithm: both sorted streams are read one depth at a time, and every newly seen image is
+     * scored by computing its distance for the other descriptor. The weighted sum of the distances at the current depth
+     * is a lower bound for every image not seen yet, so the ranking stops as soon as the worst of the top k scores is
+     * below it. It does not stop when they are equal, since an unseen image with the same score and a smaller image
+     * number would be ranked before it.
+     * The images after the top k are ranked by finishFusedRanking when they are needed.
+     *
+     */
+    fusedRanking fusedRank(int pic, double intensityWeight, double colorCodeWeight, int k)
+    {
+        if (k < 1)
+        {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        buildSortedStreams();
+        k = Math.min(k, size);
+
+        final fusedRanking fused = new fusedRanking();
+        fused.pic = pic;
+        fused.intensityWeight = intensityWeight;
+        fused.colorCodeWeight = colorCodeWeight;
+        fused.score = new double[size + 1];
+        fused.seen = new boolean[size + 1];
+        final double [] score = fused.score;
+        // max-heap holding the best k scores found so far
+        PriorityQueue<Integer> topK = new PriorityQueue<>(k, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                int c = Double.compare(score[b], score[a]);
+                return c != 0 ? c : Integer.compare(b, a);
+            }
+        });
+
+        for (int depth = 1; depth <= size; depth++)
+        {
+            int [] candidate = {intensityStream[pic][depth], colorCodeStream[pic][depth]};
+            for (int s = 0; s < candidate.length; s++)
+            {
+                int img = candidate[s];
+                if (fused.seen[img])
+                {
+                    continue;
+                }
+                fused.seen[img] = true;
+
+                // the distance of the stream is known, the other descriptor is looked up on the row
+                double intensityD;
+                double colorCodeD;
+                if (s == 0)
+                {
+                    intensityD = intensityStreamDistance[pic][depth];
+                    colorCodeD = distance(colorCodeMatrix, pic, img, COLOR_CODE_BIN);
+                }
+                else
+                {
+                    intensityD = distance(intensityMatrix, pic, img, INTEN_BIN);
+                    colorCodeD = colorCodeStreamDistance[pic][depth];
+                }
+                fused.rowsScored++;
+                score[img] = intensityWeight * intensityD + colorCodeWeight * colorCodeD;
+
+                topK.add(img);
+                if (topK.size() > k)
+                {
+                    topK.poll();
+                }
+            }
+
+            double threshold = intensityWeight * intensityStreamDistance[pic][depth]
+                    + colorCodeWeight * colorCodeStreamDistance[pic][depth];
+            if (topK.size() == k && score[topK.peek()] < threshold)
+            {
+                break;
+            }
+        }
+
+        fused.top = new int[k];
+        for (int i = k - 1; i >= 0; i--)
+        {
+            fused.top[i] = topK.poll();
+        }
+        return fused;
+    }
+
+    /**
+     * This method ranks all the images of a combined ranking. The images that the threshold algorithm never reached
+     * are scored on both descriptors, then all the images are sorted by score, then image number. The top k images
+     * are already certain, so the result starts with fused.top.
+     *
+     */
+    int[] finishFusedRanking(final fusedRanking fused)
+    {
+        Integer [] all = new Integer[size];
+        for (int img = 1; img <= size; img++)
+        {
+            if (!fused.seen[img])
+            {
+                fused.score[img] = fused.intensityWeight * distance(intensityMatrix, fused.pic, img, INTEN_BIN)
+                        + fused.colorCodeWeight * distance(colorCodeMatrix, fused.pic, img, COLOR_CODE_BIN);
+                fused.seen[img] = true;
+                fused.rowsScored += 2;
+            }
+            all[img - 1] = img;
+        }
+        Arrays.sort(all, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                int c = Double.compare(fused.score[a], fused.score[b]);
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        });
+        int [] order = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            order[i] = all[i];
+        }
+        return order;
+    }
+
+    /**
+     * This method is true when the first image is ranked after the second one: it has a larger distance, or the same
+     * distance and a larger image number
+     *
+     */
+    private static boolean worse(double distance1, int image1, double distance2, int image2)
+    {
+        return distance1 > distance2 || (distance1 == distance2 && image1 > image2);
+    }
+
+    /**
+     * This method replaces the worst image of a max-heap of n images with the given one and moves it down to its place
+     *
+     */
+    private static void siftDown(double[] distance, int[] image, int n, double d, int img)
+    {
+        int i = 0;
+        while (2 * i + 1 < n)
+        {
+            int child = 2 * i + 1;
+            if (child + 1 < n && worse(distance[child + 1], image[child + 1], distance[child], image[child]))
+            {
+                child++;
+            }
+            if (!worse(distance[child], image[child], d, img))
+            {
+                break;
+            }
+            distance[i] = distance[child];
+            image[i] = image[child];
+            i = child;
+        }
+        if (n > 0)
+        {
+            distance[i] = d;
+            image[i] = img;
+        }
+    }
+}
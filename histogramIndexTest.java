@@ -0,0 +1,181 @@
+/*
+ * CSS 490A
+ * Project 1: Implement a Simple Content-Based Image Retrieval System
+ *
+ * This class checks that histogramIndex.batchRank and histogramIndex.rank return exactly the same images, in the
+ * same order, as a full sort of the distances by distance then image number, including when several images share
+ * the same distance with the query image.
+ * It also checks that the combined ranking (histogramIndex.fusedRank, which stops early) and finishFusedRanking return
+ * the same images as a full sort of the weighted scores.
+ * It must be run from the directory holding intensity.txt, colorCodes.txt and image_size.txt (executable/).
+ *
+ * Usage: java histogramIndexTest
+ *        The exit status is 1 when a ranking differs.
+ *
+*/
+
+import java.util.*;
+
+/**
+ * histogramIndexTest class
+ *
+ */
+public class histogramIndexTest
+{
+    int failures = 0;
+
+    /**
+     * This is the main method of this class
+     *
+     */
+    public static void main(String[] args)
+    {
+        histogramIndexTest test = new histogramIndexTest();
+        histogramIndex base = new histogramIndex();
+
+        // the image database, one query at a time and all the queries in one block
+        test.checkSingleQueries(base, 20);
+        test.checkSingleQueries(base, 100);
+        test.checkBlock(base, 20);
+        test.checkFused(base, 20);
+
+        // a bigger index where every image has exact copies, so most distances are shared by several images
+        histogramIndex copies = new histogramIndex(base, 1000, 1);
+        for (int img = 1; img <= copies.size; img++)
+        {
+            int from = (img - 1) % base.size + 1;
+            copies.imageSize[img] = base.imageSize[from];
+            copies.intensityMatrix[img] = base.intensityMatrix[from].clone();
+            copies.colorCodeMatrix[img] = base.colorCodeMatrix[from].clone();
+            copies.normalizedRows[img] = base.normalizedRows[from].clone();
+        }
+        // 10 copies of each image, so k = 15 and k = 25 cut through a group of images with the same distance
+        test.checkSingleQueries(copies, 15);
+        test.checkSingleQueries(copies, 25);
+        test.checkBlock(copies, 15);
+        test.checkFused(copies, 15);
+
+        // 5 images with the given intensity and color-code distances to image 1. With equal weights, image 5 (score 2)
+        // is in the top 3 when the threshold reaches 2, while image 4 (score 2, smaller number) has not been seen yet,
+        // so the combined ranking must not stop on a score equal to the threshold
+        histogramIndex tie = new histogramIndex(base, 5, 1);
+        double [][] distance = {{0, 0}, {0, 0}, {2, 2}, {10, 2}, {2, 2}, {1, 3}};
+        for (int img = 1; img <= tie.size; img++)
+        {
+            Arrays.fill(tie.normalizedRows[img], 0);
+            tie.normalizedRows[img][0] = distance[img][0];
+            tie.normalizedRows[img][histogramIndex.INTEN_BIN] = distance[img][1];
+        }
+        test.checkFused(tie, 3);
+
+        System.out.println(test.failures == 0 ? "All rankings match" : test.failures + " rankings differ");
+        System.exit(test.failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * This method checks batchRank with a block of one query, and rank, for every image and descriptor
+     *
+     */
+    void checkSingleQueries(histogramIndex index, int k)
+    {
+        for (String descriptor : new String[] {"intensity", "colorCode"})
+        {
+            for (int pic = 1; pic <= index.size; pic++)
+            {
+                int [][] batch = index.batchRank(descriptor, new double[][] {index.queryRow(descriptor, pic)}, k);
+                compare(index, descriptor, pic, k, batch[0]);
+                compare(index, descriptor, pic, k,
+                        index.rank(index.matrix(descriptor), pic, histogramIndex.bins(descriptor), k));
+            }
+        }
+    }
+
+    /**
+     * This method checks batchRank with a block of 100 queries
+     *
+     */
+    void checkBlock(histogramIndex index, int k)
+    {
+        for (String descriptor : new String[] {"intensity", "colorCode"})
+        {
+            double [][] queries = new double[100][];
+            for (int q = 0; q < queries.length; q++)
+            {
+                queries[q] = index.queryRow(descriptor, q * index.size / queries.length + 1);
+            }
+            int [][] batch = index.batchRank(descriptor, queries, k);
+            for (int q = 0; q < queries.length; q++)
+            {
+                compare(index, descriptor, q * index.size / queries.length + 1, k, batch[q]);
+            }
+        }
+    }
+
+    /**
+     * This method checks the combined ranking of every image with a few weights. The top k must be the first k images
+     * of a full sort of the weighted scores, and finishFusedRanking must return the whole sort.
+     *
+     */
+    void checkFused(histogramIndex index, int k)
+    {
+        double [] intensityWeights = {0.5, 0.2, 1, 0};
+        for (double intensityWeight : intensityWeights)
+        {
+            double colorCodeWeight = 1 - intensityWeight;
+            for (int pic = 1; pic <= index.size; pic++)
+            {
+                double [] intensityD = index.distances(index.intensityMatrix, pic, histogramIndex.INTEN_BIN);
+                double [] colorCodeD = index.distances(index.colorCodeMatrix, pic, histogramIndex.COLOR_CODE_BIN);
+                double [] score = new double[index.size + 1];
+                for (int img = 1; img <= index.size; img++)
+                {
+                    score[img] = intensityWeight * intensityD[img] + colorCodeWeight * colorCodeD[img];
+                }
+
+                histogramIndex.fusedRanking fused = index.fusedRank(pic, intensityWeight, colorCodeWeight, k);
+                String query = "combined " + intensityWeight;
+                compare(index, query, pic, k, fused.top, score);
+                compare(index, query, pic, index.size, index.finishFusedRanking(fused), score);
+            }
+        }
+    }
+
+    /**
+     * This method compares a ranking with the first k images of a full sort of the distances
+     *
+     */
+    private void compare(histogramIndex index, String descriptor, int pic, int k, int[] ranking)
+    {
+        compare(index, descriptor, pic, k, ranking,
+                index.distances(index.matrix(descriptor), pic, histogramIndex.bins(descriptor)));
+    }
+
+    private void compare(histogramIndex index, String query, int pic, int k, int[] ranking, final double[] distance)
+    {
+        Integer [] order = new Integer[index.size];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = i + 1;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                int c = Double.compare(distance[a], distance[b]);
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        });
+
+        int [] expected = new int[Math.min(k, index.size)];
+        for (int i = 0; i < expected.length; i++)
+        {
+            expected[i] = order[i];
+        }
+        if (!Arrays.equals(expected, ranking))
+        {
+            failures++;
+            System.out.println(index.size + " images, " + query + " query " + pic + ": expected "
+                    + Arrays.toString(expected) + " got " + Arrays.toString(ranking));
+        }
+    }
+}
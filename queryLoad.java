@@ -0,0 +1,376 @@
+/*
+ * CSS 490A
+ * Project 1: Implement a Simple Content-Based Image Retrieval System
+ *
+ * This class is a load generator for the ranking code of the Content-Based Image Retrieval System.
+ * - It replays a query log against histogramIndex, the same ranking code used by the Intensity and Color Code buttons.
+ * - Each line of the query log is a query written as "picNo,descriptor,k", where descriptor is intensity or colorCode.
+ *   When no log is given, a synthetic log of random queries is generated.
+ * - Queries are sent by a number of threads at a fixed arrival rate. The latency of a query is measured from the time
+ *   it was scheduled to start, not the time a thread was free to send it, so a slow query also counts the delay it
+ *   causes to the queries waiting behind it (coordinated omission).
+ * - Throughput and p50/p95/p99/p99.9 latency are reported for each index size.
+ * - With a batch size above 1, each thread takes that many queries at a time and ranks them together with
+ *   histogramIndex.batchRank. A batch starts when its last query has arrived. A batch size of 1 uses rank, which is
+ *   batchRank with a block of one query, so the two sizes differ only by the blocking.
+ *
+ * Usage: java queryLoad [-log file] [-queries n] [-warmup n] [-threads t] [-rate queriesPerSecond] [-sizes 100,10000]
+ *                       [-batch n]
+ *        A rate of 0 sends the queries as fast as the threads can run them (latency is then measured per query).
+ *
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * queryLoad class
+ *
+ */
+public class queryLoad
+{
+    String logFile = null;
+    int queryCount = 10000;
+    int warmupCount = 2000;
+    int threadCount = 4;
+    double rate = 1000;
+    int [] indexSizes = {100, 1000, 10000};
+    int batchSize = 1;
+
+    AtomicLong checksum = new AtomicLong(); //keeps the ranking results alive so the JIT cannot drop the work
+    AtomicInteger failed = new AtomicInteger(); //queries that threw an exception, they have no latency
+
+    /**
+     * This class holds one query of the query log
+     *
+     */
+    static class query
+    {
+        int picNo;
+        String descriptor;
+        int k;
+
+        query(int picNo, String descriptor, int k)
+        {
+            this.picNo = picNo;
+            this.descriptor = descriptor;
+            this.k = k;
+        }
+    }
+
+    /**
+     * This is the main method of this class
+     *
+     */
+    public static void main(String[] args)
+    {
+        queryLoad load = new queryLoad();
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            String value = args[i + 1];
+            switch (args[i])
+            {
+                case "-log": load.logFile = value; break;
+                case "-queries": load.queryCount = Integer.parseInt(value); break;
+                case "-warmup": load.warmupCount = Integer.parseInt(value); break;
+                case "-threads": load.threadCount = Integer.parseInt(value); break;
+                case "-rate": load.rate = Double.parseDouble(value); break;
+                case "-batch": load.batchSize = Math.max(1, Integer.parseInt(value)); break;
+                case "-sizes":
+                    String[] str = value.split(",");
+                    load.indexSizes = new int[str.length];
+                    for (int j = 0; j < str.length; j++)
+                    {
+                        load.indexSizes[j] = Integer.parseInt(str[j]);
+                    }
+                    break;
+                default: System.out.println("Unknown option " + args[i]);
+            }
+        }
+        load.run();
+    }
+
+    /**
+     * This method runs the query log against an index of each size and prints one report line per size
+     *
+     */
+    public void run()
+    {
+        histogramIndex base = new histogramIndex();
+        System.out.println("threads=" + threadCount + " rate=" + (rate > 0 ? rate + "/s" : "max")
+                + " batch=" + batchSize);
+        // the log is read and checked once, each index size replays the queries on its images
+        List<query> fileLog = logFile != null ? readLog(logFile) : null;
+        System.out.println("images     queries   throughput/s   p50(ms)   p95(ms)   p99(ms)  p99.9(ms)   max(ms)");
+
+        for (int size : indexSizes)
+        {
+            histogramIndex index = size == base.size ? base : new histogramIndex(base, size, size);
+            List<query> log = fileLog != null ? queriesOn(fileLog, size) : syntheticLog(queryCount, size);
+            if (log.isEmpty())
+            {
+                System.out.println("The query log has no query for " + size + " images");
+                continue;
+            }
+
+            replay(index, syntheticLog(warmupCount, size));
+            failed.set(0);
+            long [] latency = new long [log.size()];
+            long elapsed = replay(index, log, latency);
+
+            // only the queries that ran have a latency
+            long [] done = new long [log.size() - failed.get()];
+            int n = 0;
+            for (long l : latency)
+            {
+                if (l >= 0)
+                {
+                    done[n++] = l;
+                }
+            }
+            if (failed.get() > 0)
+            {
+                System.out.println(failed.get() + " queries failed and are not counted");
+            }
+            if (done.length == 0)
+            {
+                continue;
+            }
+
+            Arrays.sort(done);
+            System.out.printf("%6d %10d %14.1f %9.3f %9.3f %9.3f %10.3f %9.3f%n", size, done.length,
+                    done.length / (elapsed / 1e9), percentile(done, 50), percentile(done, 95),
+                    percentile(done, 99), percentile(done, 99.9), done[done.length - 1] / 1e6);
+        }
+    }
+
+    /**
+     * This method reads a query log. Lines that are not a valid query (header, unknown descriptor, picNo or k below 1)
+     * are skipped with a message.
+     *
+     */
+    private List<query> readLog(String fileName)
+    {
+        List<query> log = new ArrayList<>();
+        try
+        {
+            Scanner read = new Scanner(new File(fileName));
+            int lineNumber = 0;
+            while (read.hasNextLine())
+            {
+                String line = read.nextLine().trim();
+                lineNumber++;
+                if (line.isEmpty())
+                {
+                    continue;
+                }
+
+                String[] str = line.split(",");
+                int picNo;
+                String descriptor;
+                int k;
+                try
+                {
+                    if (str.length != 3)
+                    {
+                        throw new IllegalArgumentException("expected picNo,descriptor,k");
+                    }
+                    picNo = Integer.parseInt(str[0].trim());
+                    if (picNo < 1)
+                    {
+                        throw new IllegalArgumentException("picNo must be at least 1");
+                    }
+                    descriptor = str[1].trim();
+                    histogramIndex.bins(descriptor);
+                    k = Integer.parseInt(str[2].trim());
+                    if (k < 1)
+                    {
+                        throw new IllegalArgumentException("k must be at least 1");
+                    }
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // NumberFormatException is an IllegalArgumentException too
+                    System.out.println("Skipping line " + lineNumber + " of " + fileName + ": " + e.getMessage());
+                    continue;
+                }
+
+                log.add(new query(picNo, descriptor, k));
+            }
+        }
+        catch(FileNotFoundException EE)
+        {
+            System.out.println("The file " + fileName + " does not exist");
+        }
+        return log;
+    }
+
+    /**
+     * This method returns the queries of a log on images that are in an index of the given size
+     *
+     */
+    private List<query> queriesOn(List<query> log, int size)
+    {
+        List<query> queries = new ArrayList<>();
+        for (query q : log)
+        {
+            if (q.picNo <= size)
+            {
+                queries.add(q);
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * This method generates a query log of random images, half of them by intensity and half by color code, each
+     * asking for one page (20 images)
+     *
+     */
+    private List<query> syntheticLog(int count, int size)
+    {
+        Random random = new Random(count + size);
+        List<query> log = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            log.add(new query(random.nextInt(size) + 1, random.nextBoolean() ? "intensity" : "colorCode", 20));
+        }
+        return log;
+    }
+
+    private long replay(histogramIndex index, List<query> log)
+    {
+        return replay(index, log, new long[log.size()]);
+    }
+
+    /**
+     * This method replays the query log with threadCount threads and stores the latency of query i in latency[i]
+     * (in nanoseconds). Query i is scheduled to start i / rate seconds after the start of the replay.
+     * Each thread takes batchSize queries at a time, and all of them finish when the batch finishes. The latency of
+     * the queries of a batch that throws an exception is left at -1 and counted in failed.
+     * It returns the time taken by the whole replay in nanoseconds.
+     *
+     */
+    private long replay(final histogramIndex index, final List<query> log, final long[] latency)
+    {
+        final AtomicInteger next = new AtomicInteger();
+        Arrays.fill(latency, -1);
+        final long start = System.nanoTime();
+        Thread [] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++)
+        {
+            threads[t] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    int first;
+                    while ((first = next.getAndAdd(batchSize)) < log.size())
+                    {
+                        int last = Math.min(first + batchSize, log.size()) - 1;
+                        long [] begin = new long [last - first + 1];
+                        if (rate > 0)
+                        {
+                            // wait for the scheduled start, the latency is counted from it even if this thread is late
+                            for (int i = first; i <= last; i++)
+                            {
+                                begin[i - first] = start + (long) (i * 1e9 / rate);
+                            }
+                            long wait;
+                            while ((wait = begin[last - first] - System.nanoTime()) > 0)
+                            {
+                                LockSupport.parkNanos(wait);
+                            }
+                        }
+                        else
+                        {
+                            Arrays.fill(begin, System.nanoTime());
+                        }
+
+                        try
+                        {
+                            if (batchSize == 1)
+                            {
+                                query q = log.get(first);
+                                int [] result = index.rank(index.matrix(q.descriptor), q.picNo,
+                                        histogramIndex.bins(q.descriptor), q.k);
+                                checksum.addAndGet(result[0]);
+                            }
+                            else
+                            {
+                                rankBatch(index, log.subList(first, last + 1));
+                            }
+                        }
+                        catch (RuntimeException e)
+                        {
+                            System.out.println("Query " + first + " failed: " + e);
+                            failed.addAndGet(last - first + 1);
+                            continue;
+                        }
+
+                        long end = System.nanoTime();
+                        for (int i = first; i <= last; i++)
+                        {
+                            latency[i] = end - begin[i - first];
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * This method ranks a batch of queries with histogramIndex.batchRank, one call for the intensity queries and one
+     * for the color-code queries. Every query of a call gets the largest k asked in it.
+     *
+     */
+    private void rankBatch(histogramIndex index, List<query> batch)
+    {
+        for (String descriptor : new String[] {"intensity", "colorCode"})
+        {
+            List<double[]> queries = new ArrayList<>();
+            int k = 1;
+            for (query q : batch)
+            {
+                if (q.descriptor.equals(descriptor))
+                {
+                    queries.add(index.queryRow(descriptor, q.picNo));
+                    k = Math.max(k, q.k);
+                }
+            }
+            if (!queries.isEmpty())
+            {
+                int [][] result = index.batchRank(descriptor, queries.toArray(new double[0][]), k);
+                checksum.addAndGet(result[0][0]);
+            }
+        }
+    }
+
+    /**
+     * This method returns the given percentile of the sorted latencies in milliseconds
+     *
+     */
+    private double percentile(long[] sortedLatency, double p)
+    {
+        int i = (int) Math.ceil(p / 100 * sortedLatency.length) - 1;
+        i = Math.max(0, Math.min(i, sortedLatency.length - 1));
+        return sortedLatency[i] / 1e6;
+    }
+}
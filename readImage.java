@@ -6,6 +6,11 @@
  *
  * This class reads images from image database, calculate color histogram by using intensity and color-code method,
  * and write histogram data into text files.
+ * Images are decoded in horizontal bands, so the memory used does not depend on the size of the image.
+ * Optionally, decoded images are kept in a raster cache (one binary file of downscaled RGB pixels per image), so that
+ * the histograms can be calculated again without decoding the JPEG files.
+ *
+ * Usage: java readImage [-bandPixels pixels] [-cache directory] [-cacheMB size] [-maxSide pixels]
  *
  * Assumption: There are 100 images in the image database
  *             There are 25 bins in the intensity color histogram
@@ -20,6 +25,13 @@ import javax.swing.*;
 import java.io.*;
 import java.util.*;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * readImage class
@@ -35,38 +47,445 @@ public class readImage
 
     final int INTEN_BIN = 25;
     final int COLOR_CODE_BIN = 64;
+    final static int DEFAULT_BAND_PIXELS = 16 * 1024 * 1024;
+    final int CACHE_MAGIC = 0x52474243; //"RGBC", first int of a raster cache file
+    final int CACHE_HEADER = 40; //bytes before the pixels in a raster cache file
+
+    int bandPixels; //largest number of pixels decoded at once
+    File cacheDir; //directory of the raster cache, null when the cache is not used
+    long cacheLimit; //largest total size of the raster cache files in bytes
+    int maxSide; //rasters are downscaled until their width and height are at most maxSide pixels
+    long cacheUsed = 0;
+    int cacheHits = 0;
+    int cacheMisses = 0;
+    int cacheRejected = 0; //misses that were not stored because the cache was full
+    long decodeSaved = 0; //decode time saved by cache hits, in nanoseconds
 
     /**
      * readImage constructor
-     * Each image is retrieved from the file.  The height and width are found for the image and the getIntensity and
-     * getColorCode methods are called.
+     * Each image is retrieved from the file by the readBands method, which finds the height and width of the image and
+     * calls the getIntensity and getColorCode methods for each band of the image.
      *
      */
     public readImage()
     {
+        this(DEFAULT_BAND_PIXELS, null, 0, 0);
+    }
+
+    /**
+     * readImage constructor
+     * Images are decoded at most bandPixels pixels at a time.
+     * When cacheDir is not null, each image is retrieved from the raster cache by the readCached method instead, and
+     * the time saved by the cache is printed at the end.
+     * If an image cannot be read, the run stops without writing the histogram files, so that no file holds the
+     * partial histograms or the missing size of that image.
+     *
+     */
+    public readImage(int bandPixels, File cacheDir, long cacheLimit, int maxSide)
+    {
+        this.bandPixels = bandPixels;
+        this.cacheDir = cacheDir;
+        this.cacheLimit = cacheLimit;
+        this.maxSide = maxSide;
+        if (cacheDir != null)
+        {
+            cacheDir.mkdirs();
+            evictCache();
+        }
+
         while(imageCount < 101) {
             File file = new File("images/" + imageCount + ".jpg");
-            BufferedImage image = null;
 
             try
             {
-                // the line that reads the image file
-                image = ImageIO.read(file);
+                if (cacheDir != null)
+                {
+                    readCached(file);
+                }
+                else
+                {
+                    readBands(file);
+                }
             }
             catch (IOException e)
             {
-                System.out.println("Error occurred when reading the file.");
+                System.out.println("Error occurred when reading the file " + file + ": " + e.getMessage());
+                System.out.println("The histogram files were not written.");
+                return;
             }
 
-            getIntensity(image, image.getHeight(), image.getWidth());
-            getColorCode(image, image.getHeight(), image.getWidth());
-            getImageSize(imageCount, image.getHeight(), image.getWidth());
             imageCount++;
         }
 
         writeIntensity();
         writeColorCode();
         writeImageSize();
+
+        if (cacheDir != null)
+        {
+            System.out.printf("Raster cache: %d hits, %d misses (%d not stored, cache full), %.1f MB used,"
+                    + " decode time saved %.3f s%n", cacheHits, cacheMisses, cacheRejected, cacheUsed / 1048576.0,
+                    decodeSaved / 1e9);
+        }
+    }
+
+    /**
+     * This function reads an image file one band of rows at a time and adds each band to the histograms.
+     * A band holds at most bandPixels pixels, so a very large image never has to fit in memory as a whole. All the
+     * bands are decoded into the same destination image.
+     * Each band restarts the JPEG decode from the top of the file, so the decode time grows with the square of the
+     * number of bands: a 12000x9000 JPEG takes 1.6 s in one band, 3.5 s in 7 bands (16M pixels, the default) and
+     * 9.1 s in 26 bands (4M pixels). Bands are therefore made as tall as the pixel budget allows, and the budget
+     * should be as large as the heap can afford.
+     *
+     */
+    public void readBands(File file) throws IOException
+    {
+        ImageReader reader = openReader(file);
+        try
+        {
+            int height = reader.getHeight(0);
+            int width = reader.getWidth(0);
+            int bandHeight = Math.max(1, Math.min(height, bandPixels / width));
+            ImageReadParam param = reader.getDefaultReadParam();
+            ImageTypeSpecifier type = reader.getImageTypes(0).next();
+            BufferedImage band = type.createBufferedImage(width, bandHeight);
+            param.setDestination(band);
+
+            for (int top = 0; top < height; top += bandHeight)
+            {
+                // the last band may be shorter, only its rows of the destination are counted
+                int rows = Math.min(bandHeight, height - top);
+                param.setSourceRegion(new Rectangle(0, top, width, rows));
+                reader.read(0, param);
+                getIntensity(band, rows, width);
+                getColorCode(band, rows, width);
+            }
+
+            getImageSize(imageCount, height, width);
+        }
+        finally
+        {
+            closeReader(reader);
+        }
+    }
+
+    /**
+     * This function opens an image reader on an image file
+     *
+     */
+    public ImageReader openReader(File file) throws IOException
+    {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null)
+        {
+            throw new IOException("Cannot open " + file);
+        }
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext())
+        {
+            input.close();
+            throw new IOException("No image reader for " + file);
+        }
+
+        ImageReader reader = readers.next();
+        reader.setInput(input);
+        return reader;
+    }
+
+    /**
+     * This function closes an image reader opened by openReader and its file
+     *
+     */
+    public void closeReader(ImageReader reader) throws IOException
+    {
+        ImageInputStream input = (ImageInputStream) reader.getInput();
+        reader.dispose();
+        input.close();
+    }
+
+    /**
+     * This function calculates the histograms of an image from its raster cache file.
+     * A cache file holds a header (magic number, size and modification time of the image file, maxSide used to
+     * downscale it, time taken to decode it, width and height of the raster) followed by the RGB bytes of the raster,
+     * one row after the other. On a hit the file is memory-mapped, so the pixels are read at memory speed. When the
+     * file is missing, does not match the image file or maxSide, or has the wrong length, the image is decoded again
+     * by decodeRaster.
+     * The image size is the number of pixels of the raster, so that the histograms stay consistent with it.
+     *
+     */
+    public void readCached(File file) throws IOException
+    {
+        File cacheFile = new File(cacheDir, file.getName() + ".rgb");
+        long start = System.nanoTime();
+
+        RandomAccessFile raf = openCache(file, cacheFile);
+        if (raf == null)
+        {
+            cacheMisses++;
+            // a file that does not match is out of date, it is replaced or dropped
+            if (cacheFile.exists())
+            {
+                cacheUsed -= cacheFile.length();
+                cacheFile.delete();
+            }
+            decodeRaster(file, cacheFile);
+            return;
+        }
+
+        cacheHits++;
+        cacheFile.setLastModified(System.currentTimeMillis());
+        try
+        {
+            long decodeTime = raf.readLong();
+            int width = raf.readInt();
+            int height = raf.readInt();
+            MappedByteBuffer pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, CACHE_HEADER,
+                    3L * width * height);
+
+            for (int i = 0; i < width * height; i++)
+            {
+                countPixel(pixels.get() & 0xFF, pixels.get() & 0xFF, pixels.get() & 0xFF);
+            }
+            getImageSize(imageCount, height, width);
+            decodeSaved += decodeTime - (System.nanoTime() - start);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * This function opens a raster cache file and checks its header against the image file and maxSide, and its
+     * length against the raster size. It returns the file positioned on the decode time, or null when the file is
+     * missing or does not match.
+     *
+     */
+    public RandomAccessFile openCache(File file, File cacheFile) throws IOException
+    {
+        if (!cacheFile.exists())
+        {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        boolean valid = raf.length() >= CACHE_HEADER && raf.readInt() == CACHE_MAGIC
+                && raf.readLong() == file.length() && raf.readLong() == file.lastModified()
+                && raf.readInt() == maxSide;
+        if (valid)
+        {
+            raf.readLong();
+            long width = raf.readInt();
+            long height = raf.readInt();
+            valid = raf.length() == CACHE_HEADER + 3 * width * height;
+        }
+        if (!valid)
+        {
+            raf.close();
+            return null;
+        }
+
+        raf.seek(4 + 8 + 8 + 4);
+        return raf;
+    }
+
+    /**
+     * This function decodes an image file in bands, adds each band to the histograms and writes it to a raster cache
+     * file (see readCached).
+     * The decoder skips rows and columns (source subsampling) so that the raster is at most maxSide pixels wide and
+     * high. The raster size is known before the decode, so a raster that does not fit in the cache size limit is
+     * only counted and never written. Nothing is evicted to make room: a run reads the images in the same order every
+     * time, and evicting the least recently used file would throw away the next image the following run needs, so
+     * that no run would ever hit. Once the cache is full, the rasters already in it keep producing hits and the
+     * others are decoded each run.
+     * The pixels are counted from the decoded bands, never from the file being written, so the file is not mapped
+     * when it is renamed into the cache (a mapped file cannot be renamed on Windows).
+     *
+     */
+    public void decodeRaster(File file, File cacheFile) throws IOException
+    {
+        long start = System.nanoTime();
+        ImageReader reader = openReader(file);
+        File tempFile = new File(cacheDir, file.getName() + ".tmp");
+        RandomAccessFile raf = null;
+        long length = 0;
+        boolean done = false;
+        try
+        {
+            int height = reader.getHeight(0);
+            int width = reader.getWidth(0);
+            int step = 1;
+            if (maxSide > 0)
+            {
+                step = Math.max(1, (Math.max(height, width) + maxSide - 1) / maxSide);
+            }
+            int rasterWidth = (width + step - 1) / step;
+            int rasterHeight = (height + step - 1) / step;
+
+            length = CACHE_HEADER + 3L * rasterWidth * rasterHeight;
+            if (cacheUsed + length > cacheLimit)
+            {
+                cacheRejected++;
+            }
+            else
+            {
+                raf = new RandomAccessFile(tempFile, "rw");
+                raf.setLength(0);
+            }
+
+            // a band decodes bandPixels pixels of the raster, which is bandPixels * step * step pixels of the image,
+            // and starts on a subsampled row, so its height is a multiple of step
+            long bandRows = Math.min(height, (long) bandPixels * step * step / width);
+            int bandHeight = Math.max(step, (int) bandRows / step * step);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            ImageTypeSpecifier type = reader.getImageTypes(0).next();
+            BufferedImage band = type.createBufferedImage(rasterWidth, bandHeight / step);
+            param.setDestination(band);
+            int [] rgb = new int[rasterWidth * (bandHeight / step)];
+            ByteBuffer buffer = raf != null ? ByteBuffer.allocate(3 * rgb.length) : null;
+            if (raf != null)
+            {
+                raf.getChannel().position(CACHE_HEADER);
+            }
+
+            for (int top = 0; top < height; top += bandHeight)
+            {
+                // the last band may be shorter, only its rows of the destination are counted
+                int sourceRows = Math.min(bandHeight, height - top);
+                int rows = (sourceRows + step - 1) / step;
+                param.setSourceRegion(new Rectangle(0, top, width, sourceRows));
+                reader.read(0, param);
+                band.getRGB(0, 0, rasterWidth, rows, rgb, 0, rasterWidth);
+                for (int i = 0; i < rasterWidth * rows; i++)
+                {
+                    countPixel((rgb[i] >> 16) & 0xFF, (rgb[i] >> 8) & 0xFF, rgb[i] & 0xFF);
+                }
+
+                if (raf != null)
+                {
+                    buffer.clear();
+                    for (int i = 0; i < rasterWidth * rows; i++)
+                    {
+                        buffer.put((byte) (rgb[i] >> 16));
+                        buffer.put((byte) (rgb[i] >> 8));
+                        buffer.put((byte) rgb[i]);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                    {
+                        raf.getChannel().write(buffer);
+                    }
+                }
+            }
+            getImageSize(imageCount, rasterHeight, rasterWidth);
+
+            if (raf != null)
+            {
+                raf.seek(0);
+                raf.writeInt(CACHE_MAGIC);
+                raf.writeLong(file.length());
+                raf.writeLong(file.lastModified());
+                raf.writeInt(maxSide);
+                raf.writeLong(System.nanoTime() - start);
+                raf.writeInt(rasterWidth);
+                raf.writeInt(rasterHeight);
+            }
+            done = true;
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                raf.close();
+                if (!done)
+                {
+                    tempFile.delete();
+                }
+            }
+            closeReader(reader);
+        }
+
+        if (raf != null)
+        {
+            if (!tempFile.renameTo(cacheFile))
+            {
+                tempFile.delete();
+                throw new IOException("Cannot write " + cacheFile);
+            }
+            cacheUsed += length;
+        }
+    }
+
+    /**
+     * This function deletes the least recently used raster cache files until the cache fits in its size limit. It is
+     * called when the cache is opened, since the limit may be smaller than in the previous run. Hits update the
+     * modification time of a cache file, so it is used as the time of last use. Temporary files left by an
+     * interrupted run are deleted too.
+     *
+     */
+    public void evictCache()
+    {
+        File [] files = cacheDir.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(".rgb") || name.endsWith(".tmp");
+            }
+        });
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        cacheUsed = 0;
+        for (File f : files)
+        {
+            if (f.getName().endsWith(".rgb"))
+            {
+                cacheUsed += f.length();
+            }
+            else
+            {
+                f.delete();
+            }
+        }
+
+        for (int i = 0; i < files.length && cacheUsed > cacheLimit; i++)
+        {
+            if (files[i].getName().endsWith(".rgb"))
+            {
+                long length = files[i].length();
+                if (files[i].delete())
+                {
+                    cacheUsed -= length;
+                }
+            }
+        }
+    }
+
+    /**
+     * This function adds one pixel of the current image to the intensity and color-code histograms.
+     * It uses the same formula and bins as getIntensity and getColorCode.
+     *
+     */
+    public void countPixel(int red, int green, int blue)
+    {
+        int bin = (int) (0.299 * red + 0.587 * green + 0.114 * blue) / 10;
+        if (bin == INTEN_BIN) {
+            intensityMatrix[imageCount - 1][bin]++;
+        } else {
+            intensityMatrix[imageCount - 1][bin + 1]++;
+        }
+
+        // the most significant 2 bits of red, green and blue form the 6-bit color code
+        int colorCode = ((red >> 6) << 4) | ((green >> 6) << 2) | (blue >> 6);
+        colorCodeMatrix[imageCount - 1][colorCode]++;
     }
 
     /**
@@ -213,7 +632,22 @@ public class readImage
      */
     public static void main(String[] args)
     {
-        new readImage();
+        int bandPixels = DEFAULT_BAND_PIXELS;
+        File cacheDir = null;
+        long cacheLimit = 512L * 1024 * 1024;
+        int maxSide = 1024;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch (args[i])
+            {
+                case "-bandPixels": bandPixels = Integer.parseInt(args[i + 1]); break;
+                case "-cache": cacheDir = new File(args[i + 1]); break;
+                case "-cacheMB": cacheLimit = Long.parseLong(args[i + 1]) * 1024 * 1024; break;
+                case "-maxSide": maxSide = Integer.parseInt(args[i + 1]); break;
+                default: System.out.println("Unknown option " + args[i]);
+            }
+        }
+        new readImage(bandPixels, cacheDir, cacheLimit, maxSide);
     }
 
 }